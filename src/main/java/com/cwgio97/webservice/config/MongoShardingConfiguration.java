@@ -0,0 +1,72 @@
+package com.cwgio97.webservice.config;
+
+import com.cwgio97.webservice.repository.CustomerShard;
+import com.cwgio97.webservice.repository.ShardedCustomersRepository;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Configurazione del partizionamento dei clienti su più database MongoDB.
+// Crea un client per ogni nodo elencato in "lambdashop.sharding.nodes" e li
+// consegna allo strato di persistenza ShardedCustomersRepository.
+@Configuration // Classe di configurazione
+@EnableConfigurationProperties(ShardingProperties.class)
+@Slf4j // Lombok per log
+public class MongoShardingConfiguration {
+
+    // Attesa massima per leggere l'instradamento dal primo nodo all'avvio
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(30);
+
+    // Client aperti da questa classe, da chiudere allo spegnimento
+    private final List<MongoClient> clients = new ArrayList<>();
+
+    @Bean
+    public ShardedCustomersRepository shardedCustomersRepository(ShardingProperties properties,
+                                                                 ReactiveMongoTemplate reactiveMongoTemplate,
+                                                                 MappingMongoConverter mappingMongoConverter) {
+        // Nessun nodo configurato: un solo shard, il database di default.
+        // Come per gli altri repository, il database viene contattato solo alla prima richiesta.
+        if (properties.getNodes().isEmpty()) {
+            log.info("Sharding clienti non configurato: uso il database di default");
+            return new ShardedCustomersRepository(
+                    Collections.singletonList(new CustomerShard("default", reactiveMongoTemplate)),
+                    1, properties.getRebalanceConcurrency());
+        }
+
+        List<CustomerShard> nodes = new ArrayList<>();
+        for (ShardingProperties.Node node : properties.getNodes()) {
+            MongoClient client = MongoClients.create(node.getUri());
+            clients.add(client);
+            // Riuso il converter di Spring Boot, così il mapping dei documenti è lo stesso ovunque
+            ReactiveMongoTemplate template = new ReactiveMongoTemplate(
+                    new SimpleReactiveMongoDatabaseFactory(client, node.getDatabase()), mappingMongoConverter);
+            nodes.add(new CustomerShard(node.getDatabase() + "#" + nodes.size(), template));
+        }
+        // Valore di partenza: se sul primo nodo è già salvato un instradamento, prevale quello
+        int active = properties.getActive() == 0 ? nodes.size() : properties.getActive();
+        log.info("Sharding clienti: {} nodi configurati", nodes.size());
+        ShardedCustomersRepository repository =
+                new ShardedCustomersRepository(nodes, active, properties.getRebalanceConcurrency());
+        // Verifico subito l'instradamento salvato: se usa più nodi di quelli configurati
+        // (o i nodi non sono raggiungibili) l'applicazione non parte
+        repository.initialize().block(STARTUP_TIMEOUT);
+        return repository;
+    }
+
+    @PreDestroy
+    public void closeClients() {
+        clients.forEach(MongoClient::close);
+    }
+}
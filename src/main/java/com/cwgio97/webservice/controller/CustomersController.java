@@ -1,9 +1,11 @@
 package com.cwgio97.webservice.controller;
 
 import com.cwgio97.webservice.model.Customer;
+import com.cwgio97.webservice.model.RebalanceStatus;
 import com.cwgio97.webservice.service.CustomersService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -45,15 +47,19 @@ public class CustomersController {
     // Specifico quindi la notazione (non più @PostMapping, ma @RequestMapping: notazione generica
     // per specificare endpoint, metodo e ciò che il metodo restituisce - quando non si specifica
     // @GetMapping | @PostMapping | @PutMapping va infatti specificato anche il metodo):
+    // Il parametro opzionale "sort" (es. ?sort=punti,desc) ordina i risultati.
     @RequestMapping(value = "/find/all", method = RequestMethod.GET, produces = "application/json")
-    public ResponseEntity<Flux<Customer>> getAllCustomers() {
+    public ResponseEntity<Flux<Customer>> getAllCustomers(@RequestParam(value = "sort", required = false) String sort) {
         // Inserisco log di riferimento (Lombok)
         log.info("------ Ottengo tutti i clienti ------");
         // Uso il metodo SelectAll() da CustomerService.
-        Flux<Customer> customers = customersService.findAll()
+        Flux<Customer> customers = customersService.findAll(toSort(sort))
                 // Gestisco anche un'eventuale eccezione di collection vuota - switchIfEmpty(...) -
                 // che ritorna un Mono con uno status HTTP NOT FOUND e un messaggio
-                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Lista clienti vuota.")));
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Lista clienti vuota.")))
+                // Proprietà di ordinamento non valida
+                .onErrorMap(IllegalArgumentException.class,
+                        e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()));
         // Se il metodo invece ci restituisce qualcosa...
         return new ResponseEntity<Flux<Customer>>(customers, HttpStatus.OK);
     }
@@ -73,24 +79,43 @@ public class CustomersController {
         return new ResponseEntity<Flux<Customer>>(customer, HttpStatus.OK);
     }
 
+    // Ricerca per codice cliente esatto (senza corrispondenze parziali):
+    // interroga il solo shard che contiene il codice
+    @GetMapping(value = "/find/code/exact/{codice}", produces = "application/json")
+    public ResponseEntity<Mono<Customer>> findCustomerByExactCodice(@PathVariable("codice") String codice) {
+        // Inserisco log di riferimento (Lombok)
+        log.info("------ Cerco il cliente con codice esatto " + codice + " ------");
+        Mono<Customer> customer = customersService.findByCodice(codice)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Cliente non trovato!")));
+        return new ResponseEntity<Mono<Customer>>(customer, HttpStatus.OK);
+    }
+
     // Ricerca per nome
     @GetMapping(value = "/find/name/{nome}", produces = "application/json")
-    public ResponseEntity<Flux<Customer>> findCustomerByNome(@PathVariable("nome") String nome) {
+    public ResponseEntity<Flux<Customer>> findCustomerByNome(@PathVariable("nome") String nome,
+                                                             @RequestParam(value = "sort", required = false) String sort) {
         log.info("------ Cerco i clienti con nome " + nome + " ------");
-        Flux<Customer> customer = customersService.findByNomeLike(nome)
+        Flux<Customer> customer = customersService.findByNomeLike(nome, toSort(sort))
                 // Nel caso di Flux vuoto...
-                .switchIfEmpty(Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Clienti non trovati.")));
+                .switchIfEmpty(Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Clienti non trovati.")))
+                // Proprietà di ordinamento non valida
+                .onErrorMap(IllegalArgumentException.class,
+                        e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()));
         // Se il metodo invece ci restituisce qualcosa...
         return new ResponseEntity<Flux<Customer>>(customer, HttpStatus.OK);
     }
 
     // Ricerca per monte punti
     @GetMapping(value = "/find/points/{punti}", produces = "application/json")
-    public ResponseEntity<Flux<Customer>> findCustomerByPunti(@PathVariable("punti") int punti) {
+    public ResponseEntity<Flux<Customer>> findCustomerByPunti(@PathVariable("punti") int punti,
+                                                              @RequestParam(value = "sort", required = false) String sort) {
         log.info("------ Cerco i clienti con almeno " + punti + " punti ------");
-        Flux<Customer> customer = customersService.findByPunti(punti)
+        Flux<Customer> customer = customersService.findByPunti(punti, toSort(sort))
                 // Nel caso di Flux vuoto...
-                .switchIfEmpty(Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Clienti non trovati.")));
+                .switchIfEmpty(Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Clienti non trovati.")))
+                // Proprietà di ordinamento non valida
+                .onErrorMap(IllegalArgumentException.class,
+                        e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()));
         // Se il metodo invece ci restituisce qualcosa...
         return new ResponseEntity<Flux<Customer>>(customer, HttpStatus.OK);
     }
@@ -106,4 +131,44 @@ public class CustomersController {
         // CustomersService e restituisco un HTTP_STATUS_OK
         return new ResponseEntity<Mono<Void>>(customersService.delete(id), HttpStatus.OK);
     }
+
+    // Ribilanciamento: cambia il numero di database MongoDB fra cui sono suddivisi i clienti.
+    // Lo spostamento dei documenti prosegue in background (status ACCEPTED) e il web service
+    // resta disponibile; l'avanzamento si segue con /shards/status.
+    @PostMapping(value = "/shards/rebalance/{shards}", produces = "application/json")
+    public ResponseEntity<Mono<RebalanceStatus>> rebalanceCustomers(@PathVariable("shards") int shards) {
+        log.info("------ Ribilancio i clienti su " + shards + " shard ------");
+        Mono<RebalanceStatus> status = customersService.startRebalance(shards)
+                // Numero di shard non valido oppure ribilanciamento già in corso
+                .onErrorMap(IllegalArgumentException.class,
+                        e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()))
+                .onErrorMap(IllegalStateException.class,
+                        e -> new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage()));
+        return new ResponseEntity<Mono<RebalanceStatus>>(status, HttpStatus.ACCEPTED);
+    }
+
+    // Stato dello sharding e avanzamento dell'ultimo ribilanciamento
+    @GetMapping(value = "/shards/status", produces = "application/json")
+    public ResponseEntity<Mono<RebalanceStatus>> getShardsStatus() {
+        log.info("------ Stato dello sharding clienti ------");
+        return new ResponseEntity<Mono<RebalanceStatus>>(customersService.getRebalanceStatus(), HttpStatus.OK);
+    }
+
+    // Converte il parametro "sort" nel formato <proprietà>[,asc|desc] in un Sort di Spring Data.
+    // Le proprietà ammesse vengono verificate dallo strato di servizio.
+    private Sort toSort(String sort) {
+        if (sort == null || sort.isEmpty()) {
+            return Sort.unsorted();
+        }
+        String[] parts = sort.split(",");
+        // Proprietà mancante (es. "?sort=,desc") o troppi elementi
+        if (parts.length == 0 || parts.length > 2 || parts[0].trim().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Ordinamento non valido: " + sort);
+        }
+        Sort.Direction direction = parts.length == 2
+                ? Sort.Direction.fromOptionalString(parts[1]).orElseThrow(
+                        () -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Ordinamento non valido: " + sort))
+                : Sort.Direction.ASC;
+        return Sort.by(direction, parts[0]);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package com.cwgio97.webservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// Stato dello sharding dei clienti e avanzamento dell'ultimo ribilanciamento.
+// Non è una entity: viene solo restituita in formato .json dagli endpoint di amministrazione.
+@Data // Crea getters e setters in automatico
+@AllArgsConstructor // Crea il costruttore con tutti i parametri
+@NoArgsConstructor // Crea il costruttore di base
+public class RebalanceStatus {
+
+    // true mentre un ribilanciamento è in esecuzione
+    private boolean running;
+
+    // Numero di shard attivi
+    private int shards;
+
+    // true finché i documenti possono trovarsi fuori dal proprio shard
+    private boolean migrating;
+
+    // Passata in corso (o l'ultima eseguita) del ribilanciamento
+    private int passes;
+
+    // Documenti letti, spostati e saltati (modificati nel frattempo da una scrittura concorrente)
+    private long scanned;
+
+    private long moved;
+
+    private long skipped;
+
+    // Messaggio dell'errore che ha interrotto l'ultimo ribilanciamento, se presente
+    private String error;
+
+    // Numero (stimato) di clienti in ciascuno shard attivo, o in tutti i nodi durante la migrazione,
+    // nell'ordine di configurazione
+    private List<Long> customersPerShard;
+}
@@ -0,0 +1,27 @@
+package com.cwgio97.webservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+// Instradamento dei clienti salvato sul primo nodo MongoDB: numero di shard attivi e stato
+// dell'eventuale ribilanciamento. All'avvio prevale sul valore dell'application.yml, così un
+// riavvio (anche a metà di un ribilanciamento) non perde traccia di dove si trovano i documenti.
+@Document(collection = "customer_sharding")
+@Data // Crea getters e setters in automatico
+@AllArgsConstructor // Crea il costruttore con tutti i parametri
+@NoArgsConstructor // Crea il costruttore di base
+public class ShardingState {
+
+    @Id
+    private String id;
+
+    @Field("shards")
+    private int shards;
+
+    @Field("migrating")
+    private boolean migrating;
+}
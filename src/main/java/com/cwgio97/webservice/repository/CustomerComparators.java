@@ -0,0 +1,57 @@
+package com.cwgio97.webservice.repository;
+
+import com.cwgio97.webservice.model.Customer;
+import org.springframework.data.domain.Sort;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Traduce un Sort di Spring Data in un Comparator Java sui Customer.
+// Serve per fondere in ordine i Flux già ordinati che arrivano dai vari shard:
+// ogni database ordina i propri risultati, qui ricostruisco lo stesso criterio lato applicazione.
+public final class CustomerComparators {
+
+    // Criterio di ordinamento di ciascuna proprietà del cliente
+    private static final Map<String, Comparator<Customer>> COMPARATORS = new LinkedHashMap<>();
+
+    static {
+        // MongoDB ordina i valori null prima di tutti gli altri, faccio lo stesso
+        Comparator<String> strings = Comparator.nullsFirst(Comparator.<String>naturalOrder());
+        COMPARATORS.put("id", Comparator.comparing(Customer::getId, strings));
+        COMPARATORS.put("codice", Comparator.comparing(Customer::getCodice, strings));
+        COMPARATORS.put("nome", Comparator.comparing(Customer::getNome, strings));
+        COMPARATORS.put("punti", Comparator.comparingInt(Customer::getPunti));
+        COMPARATORS.put("email", Comparator.comparing(Customer::getEmail, strings));
+        COMPARATORS.put("indirizzo", Comparator.comparing(Customer::getIndirizzo, strings));
+    }
+
+    // Proprietà per cui è possibile chiedere un ordinamento
+    public static final Set<String> SORTABLE = Collections.unmodifiableSet(COMPARATORS.keySet());
+
+    private CustomerComparators() {
+    }
+
+    // true se l'ordinamento usa solo proprietà del cliente
+    public static boolean isSortable(Sort sort) {
+        return sort.stream().allMatch(order -> SORTABLE.contains(order.getProperty()));
+    }
+
+    public static Comparator<Customer> of(Sort sort) {
+        Comparator<Customer> comparator = null;
+        for (Sort.Order order : sort) {
+            Comparator<Customer> next = COMPARATORS.get(order.getProperty());
+            if (next == null) {
+                throw new IllegalArgumentException("Ordinamento non supportato sulla proprietà " + order.getProperty());
+            }
+            if (order.isDescending()) {
+                next = next.reversed();
+            }
+            comparator = comparator == null ? next : comparator.thenComparing(next);
+        }
+        // Nessun criterio: tutti gli elementi sono "uguali"
+        return comparator == null ? (a, b) -> 0 : comparator;
+    }
+}
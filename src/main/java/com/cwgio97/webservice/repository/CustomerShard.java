@@ -0,0 +1,33 @@
+package com.cwgio97.webservice.repository;
+
+import lombok.Getter;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.repository.support.ReactiveMongoRepositoryFactory;
+
+// Rappresenta una singola partizione (shard) della collection "customer": un database MongoDB
+// raggiungibile tramite il proprio ReactiveMongoTemplate.
+// Per ogni shard creo a mano un'istanza di CustomersRepository, così le query derivate
+// (findByNomeLike, findByPunti, ...) hanno esattamente la stessa semantica su tutti i database.
+@Getter // Lombok: getters in automatico
+public class CustomerShard {
+
+    // Nome descrittivo, usato solo nei log
+    private final String name;
+
+    // Template per le operazioni che il repository non offre (es. remove condizionale)
+    private final ReactiveMongoTemplate template;
+
+    // Repository "classico" legato al database di questo shard
+    private final CustomersRepository repository;
+
+    public CustomerShard(String name, ReactiveMongoTemplate template) {
+        this(name, template, new ReactiveMongoRepositoryFactory(template).getRepository(CustomersRepository.class));
+    }
+
+    // Shard con un repository già pronto: usato dai test per simulare i guasti di un database
+    CustomerShard(String name, ReactiveMongoTemplate template, CustomersRepository repository) {
+        this.name = name;
+        this.template = template;
+        this.repository = repository;
+    }
+}
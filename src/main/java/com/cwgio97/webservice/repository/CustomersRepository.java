@@ -1,6 +1,7 @@
 package com.cwgio97.webservice.repository;
 
 import com.cwgio97.webservice.model.Customer;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import reactor.core.publisher.Flux;
@@ -24,6 +25,8 @@ public interface CustomersRepository extends ReactiveMongoRepository<Customer, S
     // Selezionare i clienti per nominativo, che non è un filtro preciso:
     // simile a LIKE in SQL
     public Flux<Customer> findByNomeLike(String nome);
+    // Stessa ricerca ma ordinata: serve per fondere in ordine i risultati dei vari shard
+    public Flux<Customer> findByNomeLike(String nome, Sort sort);
 
     // Applicare un filtro sui punti: non si utilizzano più i metodi settati prima ma
     // le query native di MongoDB. Uso quindi la notazione @Query
@@ -32,4 +35,7 @@ public interface CustomersRepository extends ReactiveMongoRepository<Customer, S
     // dal filtro inserito
     @Query("{ 'punti': {$gt:?0} }")
     public Flux<Customer> findByPunti(int punti);
+    // Il parametro Sort viene applicato anche alle query native
+    @Query("{ 'punti': {$gt:?0} }")
+    public Flux<Customer> findByPunti(int punti, Sort sort);
 }
\ No newline at end of file
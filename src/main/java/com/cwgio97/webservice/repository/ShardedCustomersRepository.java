@@ -0,0 +1,468 @@
+package com.cwgio97.webservice.repository;
+
+import com.cwgio97.webservice.model.Customer;
+import com.cwgio97.webservice.model.RebalanceStatus;
+import com.cwgio97.webservice.model.ShardingState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// Strato di partizionamento dei clienti: la collection "customer" è suddivisa fra N database MongoDB
+// (gli shard) e ogni documento finisce nello shard indicato dall'hash del suo "codice".
+// - Le ricerche puntuali per codice esatto interrogano un solo shard.
+// - Le ricerche generiche (findAll, per nome, per punti, ...) vengono lanciate in parallelo su tutti
+//   gli shard e i risultati fusi in un unico Flux ("scatter-gather"); se è richiesto un ordinamento,
+//   ogni shard ordina i propri risultati e la fusione mantiene l'ordine globale.
+// - rebalance(n) cambia a caldo il numero di shard attivi spostando i documenti fuori posto.
+//
+// L'instradamento (shard attivi + eventuale migrazione in corso) è salvato sul primo nodo e
+// caricato all'avvio (o al primo utilizzo), quindi sopravvive ai riavvii. Durante un ribilanciamento i documenti
+// possono trovarsi nel vecchio o nel nuovo shard: le letture interrogano tutti i nodi configurati
+// (scartando i doppioni) e le scritture ripuliscono due volte le copie sugli altri nodi, così un
+// documento spostato in concorrenza con una modifica non resta duplicato.
+// Si assume una sola istanza del web service: le altre non vedrebbero il cambio di instradamento.
+@Slf4j // Lombok per log
+public class ShardedCustomersRepository {
+
+    // Id del documento con l'instradamento, nella collection "customer_sharding" del primo nodo
+    static final String STATE_ID = "customers";
+
+    // Numero massimo di passate di un ribilanciamento prima di arrendersi
+    private static final int MAX_REBALANCE_PASSES = 10;
+
+    // Esito dello spostamento di un singolo documento
+    private enum MoveOutcome { STAYED, MOVED, SKIPPED }
+
+    // Instradamento: immutabile, viene sostituito in blocco e letto una sola volta per operazione,
+    // così ogni operazione vede shard attivi e stato di migrazione coerenti fra loro
+    private static final class Routing {
+        private final List<CustomerShard> shards;
+        private final boolean migrating;
+        // Scritture in corso con questo instradamento, da attendere prima di ribilanciare
+        private final AtomicInteger writes = new AtomicInteger();
+
+        private Routing(List<CustomerShard> shards, boolean migrating) {
+            this.shards = shards;
+            this.migrating = migrating;
+        }
+
+        private CustomerShard home(String codice) {
+            return shards.get(shardIndex(codice, shards.size()));
+        }
+    }
+
+    // Tutti i nodi configurati: i primi "shards.size()" sono quelli attivi
+    private final List<CustomerShard> nodes;
+
+    // Shard attivi da usare se sul primo nodo non è ancora salvato alcun instradamento
+    private final int bootstrapShards;
+
+    // Documenti spostati in parallelo da ciascuno shard durante il ribilanciamento
+    private final int rebalanceConcurrency;
+
+    // Instradamento corrente: null finché non è stato caricato dal primo nodo
+    private final AtomicReference<Routing> routing = new AtomicReference<>();
+
+    // Caricamento dell'instradamento, condiviso dalle operazioni concorrenti e ritentato in caso di errore
+    private final Mono<Routing> loading;
+
+    // Impedisce di lanciare due ribilanciamenti contemporaneamente
+    private final AtomicBoolean rebalancing = new AtomicBoolean(false);
+
+    // Avanzamento dell'ultimo ribilanciamento
+    private final AtomicInteger passes = new AtomicInteger();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile String lastError;
+
+    public ShardedCustomersRepository(List<CustomerShard> nodes, int bootstrapShards, int rebalanceConcurrency) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Serve almeno un database MongoDB per i clienti");
+        }
+        if (bootstrapShards < 1 || bootstrapShards > nodes.size()) {
+            throw new IllegalArgumentException("Il numero di shard attivi deve essere compreso fra 1 e " + nodes.size());
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.bootstrapShards = bootstrapShards;
+        this.rebalanceConcurrency = rebalanceConcurrency;
+        this.loading = loadRouting()
+                .doOnNext(loaded -> routing.compareAndSet(null, loaded))
+                .map(loaded -> routing.get())
+                .cache(loaded -> Duration.ofMillis(Long.MAX_VALUE), error -> Duration.ZERO, () -> Duration.ZERO);
+    }
+
+    // Carica e verifica l'instradamento salvato sul primo nodo. Da chiamare all'avvio, così un
+    // instradamento incompatibile con i nodi configurati blocca subito l'applicazione invece di
+    // far fallire ogni richiesta; senza questa chiamata viene caricato alla prima operazione.
+    public Mono<Void> initialize() {
+        return routing().then();
+    }
+
+    // Shard di destinazione di un codice cliente. String.hashCode() è definito dalla specifica Java,
+    // quindi l'instradamento resta stabile fra riavvii e versioni della JVM.
+    public static int shardIndex(String codice, int shardCount) {
+        return codice == null ? 0 : Math.floorMod(codice.hashCode(), shardCount);
+    }
+
+    // ---- Letture ----
+
+    public Mono<Customer> findByCodice(String codice) {
+        return routing().flatMap(current -> {
+            Mono<Customer> home = current.home(codice).getRepository().findByCodice(codice);
+            if (!current.migrating) {
+                return home;
+            }
+            // Il documento potrebbe non essere ancora stato spostato: lo cerco ovunque
+            return home.switchIfEmpty(Flux.fromIterable(nodes)
+                    .flatMap(shard -> shard.getRepository().findByCodice(codice))
+                    .next());
+        });
+    }
+
+    public Flux<Customer> findAll() {
+        return scatter(CustomersRepository::findAll);
+    }
+
+    public Flux<Customer> findAll(Sort sort) {
+        return gather(repository -> repository.findAll(sort), sort);
+    }
+
+    // La LIKE di Spring Data cerca il testo in qualsiasi punto del codice, anche senza "*"
+    // ("C0001" trova pure "XC0001Y"): le corrispondenze possono stare su qualsiasi shard.
+    // Per il codice esatto su un solo shard c'è findByCodice().
+    public Flux<Customer> findByCodiceLike(String codice) {
+        return scatter(repository -> repository.findByCodiceLike(codice));
+    }
+
+    public Flux<Customer> findByNomeLike(String nome) {
+        return scatter(repository -> repository.findByNomeLike(nome));
+    }
+
+    public Flux<Customer> findByNomeLike(String nome, Sort sort) {
+        return gather(repository -> repository.findByNomeLike(nome, sort), sort);
+    }
+
+    public Flux<Customer> findByPunti(int punti) {
+        return scatter(repository -> repository.findByPunti(punti));
+    }
+
+    public Flux<Customer> findByPunti(int punti, Sort sort) {
+        return gather(repository -> repository.findByPunti(punti, sort), sort);
+    }
+
+    // ---- Scritture ----
+
+    public Mono<Customer> save(Customer customer) {
+        return write(current -> {
+            CustomerShard home = current.home(customer.getCodice());
+            String id = customer.getId();
+            if (id == null) {
+                // Nuovo documento: non può esistere altrove
+                return home.getRepository().save(customer);
+            }
+            // Shard da cui eliminare la versione precedente. Durante un ribilanciamento lo spostamento
+            // può ricreare una copia in qualsiasi momento: ripulisco sempre tutti gli altri nodi.
+            // Altrimenti cerco l'id negli altri shard attivi (letture per id, in parallelo) e scrivo
+            // su di essi solo se il codice ha cambiato shard. La scelta non dipende da cosa c'è già
+            // nello shard di destinazione: se una pulizia fallisce, il salvataggio successivo la ripete.
+            Mono<List<CustomerShard>> previous = current.migrating
+                    ? Mono.just(nodes.stream().filter(shard -> shard != home).collect(Collectors.toList()))
+                    : Flux.fromIterable(current.shards)
+                            .filter(shard -> shard != home)
+                            .flatMap(shard -> shard.getRepository().existsById(id)
+                                    .filter(found -> found)
+                                    .map(found -> shard))
+                            .collectList();
+            return previous.flatMap(others -> {
+                Mono<Customer> saved = home.getRepository().save(customer);
+                if (others.isEmpty()) {
+                    // Il documento è nuovo o già nel suo shard: il codice non ha cambiato destinazione
+                    return saved;
+                }
+                return saved.flatMap(result -> cleanup(others, id, current.migrating).thenReturn(result));
+            });
+        });
+    }
+
+    public Mono<Void> deleteById(String id) {
+        // L'id di MongoDB non dice nulla sullo shard: elimino ovunque
+        return write(current -> cleanup(current.migrating ? nodes : current.shards, id, current.migrating));
+    }
+
+    // ---- Ribilanciamento ----
+
+    // Porta a "shardCount" il numero di shard attivi e termina quando tutti i documenti sono al
+    // loro posto. Il web service continua a rispondere: fino al termine le letture interrogano
+    // tutti i nodi. Se l'operazione si interrompe basta rilanciarla con lo stesso numero di shard.
+    public Mono<RebalanceStatus> rebalance(int shardCount) {
+        return Mono.fromRunnable(() -> begin(shardCount))
+                .then(Mono.defer(() -> run(shardCount)))
+                .then(Mono.defer(this::getRebalanceStatus));
+    }
+
+    // Come rebalance(), ma lo spostamento prosegue in background: restituisce subito lo stato,
+    // l'avanzamento si segue con getRebalanceStatus()
+    public Mono<RebalanceStatus> startRebalance(int shardCount) {
+        return Mono.fromRunnable(() -> begin(shardCount))
+                .then(Mono.fromRunnable(() -> run(shardCount).subscribe(
+                        ignored -> { },
+                        error -> log.error("Ribilanciamento clienti interrotto", error))))
+                .then(Mono.defer(this::getRebalanceStatus));
+    }
+
+    public Mono<RebalanceStatus> getRebalanceStatus() {
+        return Mono.defer(() -> {
+            // Leggo lo stato prima dell'instradamento: il ribilanciamento attiva l'instradamento
+            // finale prima di terminare, quindi "non in esecuzione" implica instradamento aggiornato
+            boolean running = rebalancing.get();
+            // Durante la migrazione i clienti possono trovarsi anche sui nodi non più attivi: li conto tutti.
+            // Il conteggio stimato legge i metadati della collection, senza scorrere i documenti.
+            return routing().flatMap(current -> Flux.fromIterable(current.migrating ? nodes : current.shards)
+                    .concatMap(shard -> shard.getTemplate().estimatedCount(Customer.class))
+                    .collectList()
+                    .map(perShard -> new RebalanceStatus(running, current.shards.size(), current.migrating,
+                            passes.get(), scanned.get(), moved.get(), skipped.get(), lastError, perShard)));
+        });
+    }
+
+    // Verifica i parametri e prenota il ribilanciamento
+    private void begin(int shardCount) {
+        if (shardCount < 1 || shardCount > nodes.size()) {
+            throw new IllegalArgumentException("Il numero di shard deve essere compreso fra 1 e " + nodes.size());
+        }
+        if (!rebalancing.compareAndSet(false, true)) {
+            throw new IllegalStateException("Ribilanciamento già in corso");
+        }
+        passes.set(0);
+        scanned.set(0);
+        moved.set(0);
+        skipped.set(0);
+        lastError = null;
+    }
+
+    private Mono<Void> run(int shardCount) {
+        return routing()
+                .flatMap(previous -> {
+                    log.info("Ribilanciamento clienti: da {} a {} shard", previous.shards.size(), shardCount);
+                    Routing migrating = new Routing(nodes.subList(0, shardCount), true);
+                    Routing done = new Routing(migrating.shards, false);
+                    // Prima salvo e attivo il nuovo instradamento in modalità migrazione, poi attendo
+                    // le scritture partite con quello vecchio: da qui in poi nessuna scrittura può
+                    // finire su uno shard già controllato senza che una passata successiva la veda
+                    return switchTo(migrating)
+                            .then(drain(previous))
+                            .then(rebalancePass(migrating, 1))
+                            .then(switchTo(done));
+                })
+                .doOnSuccess(ignored -> log.info("Ribilanciamento clienti completato: {} spostati, {} saltati",
+                        moved.get(), skipped.get()))
+                .doOnError(error -> lastError = error.getMessage())
+                .doOnTerminate(() -> rebalancing.set(false))
+                .doOnCancel(() -> rebalancing.set(false));
+    }
+
+    // Salva l'instradamento sul primo nodo e solo dopo lo rende attivo
+    private Mono<Void> switchTo(Routing next) {
+        ShardingState state = new ShardingState(STATE_ID, next.shards.size(), next.migrating);
+        return Mono.defer(() -> stateTemplate().save(state))
+                .doOnSuccess(saved -> routing.set(next))
+                .then();
+    }
+
+    // Attende che le scritture partite con l'instradamento indicato siano terminate
+    private Mono<Void> drain(Routing previous) {
+        return Flux.interval(Duration.ZERO, Duration.ofMillis(10))
+                .filter(tick -> previous.writes.get() == 0)
+                .next()
+                .then();
+    }
+
+    // Una passata scorre tutti i nodi e sposta i documenti fuori posto. Le scritture concorrenti
+    // possono far saltare qualche spostamento, quindi ripeto finché una passata non trova più nulla.
+    private Mono<Void> rebalancePass(Routing target, int pass) {
+        return Mono.defer(() -> {
+            passes.set(pass);
+            return Flux.fromIterable(nodes)
+                    .concatMap(source -> source.getTemplate().findAll(Customer.class)
+                            .flatMap(customer -> move(target, source, customer), rebalanceConcurrency))
+                    .doOnNext(this::count)
+                    .collect(() -> new long[MoveOutcome.values().length], (counts, outcome) -> counts[outcome.ordinal()]++);
+        }).flatMap(counts -> {
+            long passMoved = counts[MoveOutcome.MOVED.ordinal()];
+            long passSkipped = counts[MoveOutcome.SKIPPED.ordinal()];
+            log.info("Passata {}: {} clienti spostati, {} saltati", pass, passMoved, passSkipped);
+            if (passMoved == 0 && passSkipped == 0) {
+                return Mono.empty();
+            }
+            if (pass >= MAX_REBALANCE_PASSES) {
+                return Mono.error(new IllegalStateException(
+                        "Ribilanciamento non completato dopo " + pass + " passate: rilanciarlo"));
+            }
+            return rebalancePass(target, pass + 1);
+        });
+    }
+
+    private void count(MoveOutcome outcome) {
+        scanned.incrementAndGet();
+        if (outcome == MoveOutcome.MOVED) {
+            moved.incrementAndGet();
+        } else if (outcome == MoveOutcome.SKIPPED) {
+            skipped.incrementAndGet();
+        }
+    }
+
+    // Sposta un documento nel suo shard di destinazione: prima lo copio, poi elimino l'originale
+    // solo se nel frattempo non è stato modificato. In caso contrario annullo la copia e lascio
+    // che sia la scrittura concorrente (o la passata successiva) a sistemarlo.
+    private Mono<MoveOutcome> move(Routing target, CustomerShard source, Customer customer) {
+        CustomerShard home = target.home(customer.getCodice());
+        if (home == source) {
+            return Mono.just(MoveOutcome.STAYED);
+        }
+        return home.getTemplate().insert(customer)
+                .thenReturn(true)
+                // Lo stesso id è già nello shard di destinazione: lascio quella versione
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.just(false))
+                .flatMap(inserted -> source.getTemplate().remove(sameContent(customer), Customer.class)
+                        .flatMap(result -> {
+                            if (result.getDeletedCount() > 0) {
+                                return Mono.just(MoveOutcome.MOVED);
+                            }
+                            Mono<?> rollback = inserted
+                                    ? home.getTemplate().remove(sameContent(customer), Customer.class)
+                                    : Mono.empty();
+                            return rollback.thenReturn(MoveOutcome.SKIPPED);
+                        }));
+    }
+
+    // ---- Metodi di supporto ----
+
+    private ReactiveMongoTemplate stateTemplate() {
+        return nodes.get(0).getTemplate();
+    }
+
+    // Legge l'instradamento salvato sul primo nodo; se manca salvo quello di partenza della configurazione
+    private Mono<Routing> loadRouting() {
+        ShardingState bootstrap = new ShardingState(STATE_ID, bootstrapShards, false);
+        return Mono.defer(() -> stateTemplate().findById(STATE_ID, ShardingState.class))
+                .switchIfEmpty(Mono.defer(() -> stateTemplate().insert(bootstrap))
+                        // Un'altra operazione l'ha appena salvato: uso quello
+                        .onErrorResume(DuplicateKeyException.class,
+                                e -> stateTemplate().findById(STATE_ID, ShardingState.class)))
+                .flatMap(state -> {
+                    if (state.getShards() < 1 || state.getShards() > nodes.size()) {
+                        return Mono.error(new IllegalStateException("L'instradamento salvato usa " + state.getShards()
+                                + " shard, ma ne sono configurati " + nodes.size()));
+                    }
+                    if (state.isMigrating()) {
+                        log.warn("Ribilanciamento clienti interrotto: rilanciarlo con {} shard", state.getShards());
+                    }
+                    log.info("Sharding clienti: {} shard attivi su {} nodi", state.getShards(), nodes.size());
+                    return Mono.just(new Routing(nodes.subList(0, state.getShards()), state.isMigrating()));
+                });
+    }
+
+    private Mono<Routing> routing() {
+        return Mono.defer(() -> {
+            Routing current = routing.get();
+            return current != null ? Mono.just(current) : loading;
+        });
+    }
+
+    // Esegue una scrittura registrandola sull'instradamento usato, così un ribilanciamento
+    // può attendere che terminino le scritture partite prima del cambio di instradamento
+    private <T> Mono<T> write(Function<Routing, Mono<T>> operation) {
+        return routing().then(Mono.defer(() -> {
+            Routing current = acquire();
+            return Mono.defer(() -> operation.apply(current))
+                    .doFinally(signal -> current.writes.decrementAndGet());
+        }));
+    }
+
+    private Routing acquire() {
+        while (true) {
+            Routing current = routing.get();
+            current.writes.incrementAndGet();
+            // Se nel frattempo l'instradamento è cambiato riprovo con quello nuovo
+            if (routing.get() == current) {
+                return current;
+            }
+            current.writes.decrementAndGet();
+        }
+    }
+
+    // Interroga in parallelo gli shard e fonde i risultati man mano che arrivano
+    private Flux<Customer> scatter(Function<CustomersRepository, Flux<Customer>> query) {
+        return routing().flatMapMany(current -> Flux.merge(sources(current, query)));
+    }
+
+    // Come scatter(), ma ogni shard restituisce i risultati già ordinati e la fusione
+    // mantiene l'ordinamento richiesto
+    @SuppressWarnings("unchecked")
+    private Flux<Customer> gather(Function<CustomersRepository, Flux<Customer>> query, Sort sort) {
+        if (sort.isUnsorted()) {
+            return scatter(query);
+        }
+        return routing().flatMapMany(current -> Flux.mergeComparing(CustomerComparators.of(sort),
+                sources(current, query).toArray(new Flux[0])));
+    }
+
+    // Un Flux per ogni shard da interrogare. Durante un ribilanciamento interrogo tutti i nodi e lo
+    // stesso documento può comparire su due di essi: tengo la copia che si trova nel suo shard di
+    // destinazione e, dagli altri nodi, solo i documenti che la destinazione non ha ancora.
+    // Costa una lettura per id per ogni documento non ancora spostato, ma non serve ricordare
+    // gli id già visti (la memoria non cresce con la collection). Un documento spostato proprio
+    // mentre la ricerca è in corso può mancare dai risultati: le ricerche ripetute lo ritrovano.
+    private List<Flux<Customer>> sources(Routing current, Function<CustomersRepository, Flux<Customer>> query) {
+        if (!current.migrating) {
+            return current.shards.stream()
+                    .map(shard -> query.apply(shard.getRepository()))
+                    .collect(Collectors.toList());
+        }
+        return nodes.stream()
+                .map(node -> query.apply(node.getRepository())
+                        .filterWhen(customer -> {
+                            CustomerShard home = current.home(customer.getCodice());
+                            return home == node
+                                    ? Mono.just(true)
+                                    : home.getRepository().existsById(customer.getId()).map(found -> !found);
+                        }))
+                .collect(Collectors.toList());
+    }
+
+    // Elimina l'id dagli shard indicati. Durante un ribilanciamento ripeto l'eliminazione:
+    // una copia creata in quel momento dallo spostamento viene così rimossa dalla seconda passata.
+    private Mono<Void> cleanup(List<CustomerShard> targets, String id, boolean twice) {
+        Mono<Void> delete = Flux.fromIterable(targets)
+                .flatMap(shard -> shard.getRepository().deleteById(id))
+                .then();
+        return twice ? delete.then(delete) : delete;
+    }
+
+    // Filtro che individua il documento solo se è identico a quello letto
+    private static Query sameContent(Customer customer) {
+        return Query.query(Criteria.where("id").is(customer.getId())
+                .and("codice").is(customer.getCodice())
+                .and("nome").is(customer.getNome())
+                .and("punti").is(customer.getPunti())
+                .and("email").is(customer.getEmail())
+                .and("indirizzo").is(customer.getIndirizzo()));
+    }
+}
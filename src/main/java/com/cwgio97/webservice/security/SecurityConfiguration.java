@@ -42,6 +42,7 @@ public class SecurityConfiguration {
         final String[] ADMIN_MATCHER = {
                 "/api/customers/insert/**",
                 "/api/customers/delete/**",
+                "/api/customers/shards/**",
                 "/api/gifts/insert/**",
                 "/api/gifts/delete/**",
                 "/api/gifts/auth"};
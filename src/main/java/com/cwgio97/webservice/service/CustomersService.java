@@ -1,6 +1,8 @@
 package com.cwgio97.webservice.service;
 
 import com.cwgio97.webservice.model.Customer;
+import com.cwgio97.webservice.model.RebalanceStatus;
+import org.springframework.data.domain.Sort;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -9,13 +11,20 @@ public interface CustomersService {
     // Seleziona tutti gli elementi: utilizzo il Flux nella SelectAll() perché quando
     // si usano tecniche reactive non si parla più di "collezioni" ma di flussi (--> Flux) di "customer".
     public Flux<Customer> findAll();
+    public Flux<Customer> findAll(Sort sort);
     // Nelle tecniche reactive viene restituito, al momento del salvataggio,
     // un altro elemento: il "Mono": rappresenta UNA sola classe cliente;
     // --> FLUX quando ne abbiamo più di una, MONO quando è una soltanto.
     public Mono<Customer> save(Customer customer);
     public Mono<Void> delete(String id);
     // Ricerche personalizzate
+    public Mono<Customer> findByCodice(String codice);
     public Flux<Customer> findByCodiceLike(String codice);
     public Flux<Customer> findByNomeLike(String nome);
+    public Flux<Customer> findByNomeLike(String nome, Sort sort);
     public Flux<Customer> findByPunti(int punti);
+    public Flux<Customer> findByPunti(int punti, Sort sort);
+    // Avvia in background il cambio del numero di database (shard) fra cui sono suddivisi i clienti
+    public Mono<RebalanceStatus> startRebalance(int shards);
+    public Mono<RebalanceStatus> getRebalanceStatus();
 }
@@ -1,14 +1,17 @@
 package com.cwgio97.webservice.service;
 
 import com.cwgio97.webservice.model.Customer;
-import com.cwgio97.webservice.repository.CustomersRepository;
+import com.cwgio97.webservice.model.RebalanceStatus;
+import com.cwgio97.webservice.repository.CustomerComparators;
+import com.cwgio97.webservice.repository.ShardedCustomersRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.Objects;
+import java.util.function.Supplier;
 
 // Implementazione dell'interfaccia CustomersService.
 
@@ -23,9 +26,10 @@ import java.util.Objects;
 @Slf4j // Lombok per log
 public class CustomersServiceImplementation implements CustomersService {
 
-    // Code injection, come visto sopra:
+    // Code injection, come visto sopra. I clienti sono suddivisi fra più database MongoDB:
+    // lo strato di persistenza instrada ogni operazione sullo shard (o sugli shard) corretti.
     @Autowired
-    CustomersRepository customersRepository;
+    ShardedCustomersRepository customersRepository;
 
     // Implementazione dei metodi dello strato di persistenza
     @Override
@@ -34,6 +38,12 @@ public class CustomersServiceImplementation implements CustomersService {
         return customersRepository.findAll();
     }
 
+    @Override
+    public Flux<Customer> findAll(Sort sort) {
+        // Ogni shard ordina i propri clienti, poi i flussi vengono fusi mantenendo l'ordine
+        return sorted(sort, () -> customersRepository.findAll(sort));
+    }
+
     @Override
     public Mono<Customer> save(Customer customer) {
         // insert(<Entity>) per il solo inserimento
@@ -47,6 +57,12 @@ public class CustomersServiceImplementation implements CustomersService {
         return customersRepository.deleteById(id);
     }
 
+    @Override
+    public Mono<Customer> findByCodice(String codice) {
+        // Ricerca puntuale: interroga il solo shard che contiene il codice
+        return customersRepository.findByCodice(codice);
+    }
+
     @Override
     public Flux<Customer> findByCodiceLike(String codice) {
         return customersRepository.findByCodiceLike(codice);
@@ -57,8 +73,36 @@ public class CustomersServiceImplementation implements CustomersService {
         return customersRepository.findByNomeLike(nome);
     }
 
+    @Override
+    public Flux<Customer> findByNomeLike(String nome, Sort sort) {
+        return sorted(sort, () -> customersRepository.findByNomeLike(nome, sort));
+    }
+
     @Override
     public Flux<Customer> findByPunti(int punti) {
         return customersRepository.findByPunti(punti);
     }
+
+    @Override
+    public Flux<Customer> findByPunti(int punti, Sort sort) {
+        return sorted(sort, () -> customersRepository.findByPunti(punti, sort));
+    }
+
+    @Override
+    public Mono<RebalanceStatus> startRebalance(int shards) {
+        return customersRepository.startRebalance(shards);
+    }
+
+    @Override
+    public Mono<RebalanceStatus> getRebalanceStatus() {
+        return customersRepository.getRebalanceStatus();
+    }
+
+    // Esegue la ricerca solo se l'ordinamento richiesto usa proprietà del cliente
+    private Flux<Customer> sorted(Sort sort, Supplier<Flux<Customer>> query) {
+        if (!CustomerComparators.isSortable(sort)) {
+            return Flux.error(new IllegalArgumentException("Ordinamento non valido: " + sort));
+        }
+        return query.get();
+    }
 }
\ No newline at end of file
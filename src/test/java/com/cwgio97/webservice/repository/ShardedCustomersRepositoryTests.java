@@ -0,0 +1,498 @@
+package com.cwgio97.webservice.repository;
+
+import com.cwgio97.webservice.model.Customer;
+import com.cwgio97.webservice.model.RebalanceStatus;
+import com.cwgio97.webservice.model.ShardingState;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Verifica lo sharding dei clienti avviando più istanze MongoDB embedded (in memoria), una per shard
+class ShardedCustomersRepositoryTests {
+
+    private static final int NODES = 3;
+
+    private static final List<MongoServer> servers = new ArrayList<>();
+    private static final List<MongoClient> clients = new ArrayList<>();
+    private static final List<CustomerShard> nodes = new ArrayList<>();
+
+    @BeforeAll
+    static void startMongo() {
+        for (int i = 0; i < NODES; i++) {
+            MongoServer server = new MongoServer(new MemoryBackend());
+            InetSocketAddress address = server.bind();
+            servers.add(server);
+            MongoClient client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+            clients.add(client);
+            nodes.add(new CustomerShard("shard" + i, new ReactiveMongoTemplate(client, "lambdashop")));
+        }
+    }
+
+    @AfterAll
+    static void stopMongo() {
+        clients.forEach(MongoClient::close);
+        servers.forEach(MongoServer::shutdown);
+    }
+
+    @BeforeEach
+    void clean() {
+        nodes.forEach(node -> {
+            node.getTemplate().dropCollection(Customer.class).block();
+            node.getTemplate().dropCollection(ShardingState.class).block();
+        });
+    }
+
+    @Test
+    void customersAreStoredOnTheirHomeShard() {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, NODES, 4);
+        saveCustomers(repository, 30);
+
+        for (int i = 0; i < 30; i++) {
+            String codice = codice(i);
+            int home = ShardedCustomersRepository.shardIndex(codice, NODES);
+            for (int shard = 0; shard < NODES; shard++) {
+                assertEquals(shard == home ? 1L : 0L, countByCodice(shard, codice));
+            }
+            StepVerifier.create(repository.findByCodice(codice))
+                    .expectNextMatches(customer -> codice.equals(customer.getCodice()))
+                    .verifyComplete();
+        }
+    }
+
+    @Test
+    void scatterGatherMergesAllShardsInOrder() {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, NODES, 4);
+        saveCustomers(repository, 30);
+
+        StepVerifier.create(repository.findAll())
+                .expectNextCount(30)
+                .verifyComplete();
+
+        List<Customer> sorted = repository.findAll(Sort.by(Sort.Direction.DESC, "punti")).collectList().block();
+        assertEquals(30, sorted.size());
+        assertSorted(sorted, Comparator.comparingInt(Customer::getPunti).reversed());
+
+        List<Customer> filtered = repository.findByPunti(100, Sort.by("nome")).collectList().block();
+        assertEquals(19, filtered.size());
+        assertSorted(filtered, Comparator.comparing(Customer::getNome));
+
+        List<Customer> byName = repository.findByNomeLike("Cliente", Sort.by(Sort.Direction.DESC, "nome"))
+                .collectList().block();
+        assertEquals(30, byName.size());
+        assertSorted(byName, Comparator.comparing(Customer::getNome).reversed());
+    }
+
+    @Test
+    void codeSearchFindsPartialMatchesOnEveryShard() {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, NODES, 4);
+        saveCustomers(repository, 30);
+
+        // "C0001" senza caratteri jolly trova comunque C00010 ... C00019, sparsi su più shard
+        List<Customer> found = repository.findByCodiceLike("C0001").collectList().block();
+        assertEquals(10, found.size());
+        assertTrue(found.stream()
+                .map(customer -> ShardedCustomersRepository.shardIndex(customer.getCodice(), NODES))
+                .distinct().count() > 1);
+        StepVerifier.create(repository.findByCodiceLike("C0001*"))
+                .expectNextCount(10)
+                .verifyComplete();
+
+        // La ricerca esatta non restituisce corrispondenze parziali
+        StepVerifier.create(repository.findByCodice("C0001"))
+                .verifyComplete();
+    }
+
+    @Test
+    void changingCodiceMovesTheCustomer() {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, NODES, 4);
+        saveCustomers(repository, 30);
+
+        // Cerco un cliente che, cambiando codice, cambia anche shard
+        Customer customer = repository.findByCodice(codice(0)).block();
+        int i = 30;
+        while (ShardedCustomersRepository.shardIndex(codice(i), NODES)
+                == ShardedCustomersRepository.shardIndex(customer.getCodice(), NODES)) {
+            i++;
+        }
+        customer.setCodice(codice(i));
+        repository.save(customer).block();
+
+        StepVerifier.create(repository.findAll())
+                .expectNextCount(30)
+                .verifyComplete();
+        StepVerifier.create(repository.findByCodice(codice(i)))
+                .expectNextCount(1)
+                .verifyComplete();
+    }
+
+    @Test
+    void failedCleanupIsRepairedByTheNextSave() {
+        // Nodi su cui posso far fallire le eliminazioni per id
+        AtomicBoolean failDeletes = new AtomicBoolean(false);
+        List<CustomerShard> faulty = nodes.stream()
+                .map(node -> new CustomerShard(node.getName(), node.getTemplate(),
+                        failingDeletes(node.getRepository(), failDeletes)))
+                .collect(Collectors.toList());
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(faulty, NODES, 4);
+        Customer customer = repository.save(customer(null, codiceOnShard(0, NODES, 0))).block();
+
+        // Il codice cambia shard, ma l'eliminazione della vecchia copia fallisce
+        customer.setCodice(codiceOnShard(1, NODES, 0));
+        failDeletes.set(true);
+        StepVerifier.create(repository.save(customer))
+                .expectError(DataAccessResourceFailureException.class)
+                .verify();
+        assertEquals(1L, countById(0, customer.getId()));
+        assertEquals(1L, countById(1, customer.getId()));
+
+        // Ripetendo il salvataggio la vecchia copia viene eliminata
+        failDeletes.set(false);
+        repository.save(customer).block();
+        assertCustomersAtHome(NODES, Collections.singletonList(customer.getCodice()));
+    }
+
+    @Test
+    void rebalanceMovesCustomersToTheNewLayout() {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, 2, 4);
+        saveCustomers(repository, 60);
+
+        StepVerifier.create(repository.rebalance(NODES))
+                .expectNextMatches(status -> status.getShards() == NODES
+                        && !status.isRunning()
+                        && !status.isMigrating()
+                        && status.getMoved() > 0
+                        && status.getCustomersPerShard().stream().mapToLong(Long::longValue).sum() == 60)
+                .verifyComplete();
+        assertCustomersAtHome(NODES, expectedCodici(60));
+        StepVerifier.create(repository.findAll())
+                .expectNextCount(60)
+                .verifyComplete();
+
+        // E si può tornare indietro
+        StepVerifier.create(repository.rebalance(1))
+                .expectNextMatches(status -> status.getCustomersPerShard().get(0) == 60L)
+                .verifyComplete();
+    }
+
+    @Test
+    void routingSurvivesRestart() {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, 2, 4);
+        saveCustomers(repository, 30);
+        repository.rebalance(NODES).block();
+
+        // Un nuovo avvio con la configurazione di partenza usa l'instradamento salvato
+        ShardedCustomersRepository restarted = new ShardedCustomersRepository(nodes, 2, 4);
+        StepVerifier.create(restarted.getRebalanceStatus())
+                .expectNextMatches(status -> status.getShards() == NODES && !status.isMigrating())
+                .verifyComplete();
+        for (int i = 0; i < 30; i++) {
+            StepVerifier.create(restarted.findByCodice(codice(i)))
+                    .expectNextCount(1)
+                    .verifyComplete();
+        }
+    }
+
+    @Test
+    void savedRoutingLargerThanTheNodesIsRejectedAtStartup() {
+        nodes.get(0).getTemplate().save(new ShardingState(ShardedCustomersRepository.STATE_ID, NODES, false)).block();
+
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes.subList(0, 2), 2, 4);
+        StepVerifier.create(repository.initialize())
+                .expectError(IllegalStateException.class)
+                .verify();
+    }
+
+    @Test
+    void readsDuringMigrationFindCustomersOnAnyNode() {
+        // Simulo un riavvio a metà ribilanciamento: instradamento salvato con 3 shard in migrazione,
+        // un cliente ancora sul vecchio shard e uno copiato ma non ancora eliminato dall'origine
+        nodes.get(0).getTemplate().save(new ShardingState(ShardedCustomersRepository.STATE_ID, NODES, true)).block();
+        Customer notMoved = customer("id-not-moved", codiceOnShard(0, NODES, 0));
+        Customer copied = customer("id-copied", codiceOnShard(1, NODES, 1));
+        nodes.get(1).getTemplate().insert(notMoved).block();
+        nodes.get(1).getTemplate().insert(copied).block();
+        nodes.get(2).getTemplate().insert(copied).block();
+
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, 2, 4);
+
+        StepVerifier.create(repository.getRebalanceStatus())
+                .expectNextMatches(status -> status.isMigrating() && status.getShards() == NODES)
+                .verifyComplete();
+        StepVerifier.create(repository.findByCodice(notMoved.getCodice()))
+                .expectNextMatches(customer -> "id-not-moved".equals(customer.getId()))
+                .verifyComplete();
+        StepVerifier.create(repository.findAll())
+                .expectNextCount(2)
+                .verifyComplete();
+        StepVerifier.create(repository.findAll(Sort.by("codice")))
+                .expectNextCount(2)
+                .verifyComplete();
+
+        // Rilanciando il ribilanciamento tutto torna al suo posto
+        repository.rebalance(NODES).block();
+        assertCustomersAtHome(NODES, Arrays.asList(notMoved.getCodice(), copied.getCodice()));
+    }
+
+    @Test
+    void statusDuringMigrationCountsEveryNode() {
+        // Migrazione verso un solo shard interrotta: un cliente è rimasto sull'ultimo nodo
+        nodes.get(0).getTemplate().save(new ShardingState(ShardedCustomersRepository.STATE_ID, 1, true)).block();
+        nodes.get(2).getTemplate().insert(customer("id-left", codice(0))).block();
+
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, NODES, 4);
+        StepVerifier.create(repository.getRebalanceStatus())
+                .expectNextMatches(status -> status.getShards() == 1
+                        && status.getCustomersPerShard().equals(Arrays.asList(0L, 0L, 1L)))
+                .verifyComplete();
+    }
+
+    @Test
+    void overlappingRebalanceIsRejected() throws Exception {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, 2, 4);
+        saveCustomers(repository, 500);
+
+        CompletableFuture<RebalanceStatus> first = repository.rebalance(NODES).toFuture();
+        StepVerifier.create(repository.rebalance(1))
+                .expectError(IllegalStateException.class)
+                .verify();
+        StepVerifier.create(repository.startRebalance(1))
+                .expectError(IllegalStateException.class)
+                .verify();
+
+        assertEquals(NODES, first.get(30, TimeUnit.SECONDS).getShards());
+    }
+
+    @Test
+    void startRebalanceRunsInBackground() {
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(nodes, 2, 4);
+        saveCustomers(repository, 100);
+
+        StepVerifier.create(repository.startRebalance(NODES))
+                .expectNextMatches(RebalanceStatus::isRunning)
+                .verifyComplete();
+
+        // Attendo la fine seguendo lo stato, come farebbe un amministratore
+        RebalanceStatus status = Flux.interval(Duration.ofMillis(20))
+                .concatMap(tick -> repository.getRebalanceStatus())
+                .filter(current -> !current.isRunning())
+                .blockFirst(Duration.ofSeconds(30));
+        assertFalse(status.isMigrating());
+        assertNull(status.getError());
+        assertCustomersAtHome(NODES, expectedCodici(100));
+    }
+
+    @Test
+    void writesDuringRebalanceLeaveEveryCustomerOnceOnItsHomeShard() throws Exception {
+        // Il ribilanciamento legge i documenti da spostare, ma le copie restano in attesa finché
+        // le scritture non sono terminate: ogni spostamento trattenuto usa una versione ormai superata
+        Sinks.Empty<Void> gate = Sinks.empty();
+        AtomicInteger held = new AtomicInteger();
+        List<CustomerShard> gated = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            gated.add(new CustomerShard("gated" + i, new GatedTemplate(clients.get(i), gate.asMono(), held)));
+        }
+        ShardedCustomersRepository repository = new ShardedCustomersRepository(gated, 2, 64);
+        int count = 600;
+        saveCustomers(repository, count);
+        Map<String, Customer> byCodice = new HashMap<>();
+        repository.findAll().toIterable().forEach(customer -> byCodice.put(customer.getCodice(), customer));
+
+        // Mentre il ribilanciamento sposta i documenti, elimino, rinomino e cambio codice
+        // a una parte dei clienti e ne inserisco di nuovi
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            switch (i % 4) {
+                case 0:
+                    break;
+                case 1:
+                    expected.add(codice(10000 + i));
+                    break;
+                case 2:
+                    expected.add(codice(i));
+                    break;
+                default:
+                    expected.add(codice(i));
+                    expected.add(codice(20000 + i));
+            }
+        }
+
+        CompletableFuture<RebalanceStatus> rebalance = repository.rebalance(NODES).toFuture();
+        // Parto solo quando il ribilanciamento è in migrazione e ha già letto i primi documenti da spostare
+        Flux.interval(Duration.ofMillis(10))
+                .filter(tick -> held.get() > 0)
+                .blockFirst(Duration.ofSeconds(30));
+        assertTrue(repository.getRebalanceStatus().block().isMigrating());
+
+        Flux.range(0, count)
+                .flatMap(i -> {
+                    Customer customer = byCodice.get(codice(i));
+                    switch (i % 4) {
+                        case 0:
+                            return repository.deleteById(customer.getId());
+                        case 1:
+                            customer.setCodice(codice(10000 + i));
+                            return repository.save(customer).then();
+                        case 2:
+                            customer.setNome("Modificato " + i);
+                            return repository.save(customer).then();
+                        default:
+                            return repository.save(customer(null, codice(20000 + i))).then();
+                    }
+                }, 8)
+                .blockLast(Duration.ofSeconds(30));
+        // Con il cancello chiuso il ribilanciamento non può terminare
+        assertFalse(rebalance.isDone());
+
+        gate.tryEmitEmpty();
+        RebalanceStatus status = rebalance.get(30, TimeUnit.SECONDS);
+        assertFalse(status.isMigrating());
+        // Gli spostamenti trattenuti sono stati annullati, non hanno sovrascritto le modifiche
+        assertTrue(status.getSkipped() > 0);
+        assertCustomersAtHome(NODES, expected);
+        for (int i = 2; i < count; i += 4) {
+            assertEquals("Modificato " + i, repository.findByCodice(codice(i)).block().getNome());
+        }
+    }
+
+    // Template che trattiene l'inserimento dei clienti fatto dal ribilanciamento (insert senza
+    // collection) finché il cancello non si apre. Le scritture del repository non passano di qui.
+    private static class GatedTemplate extends ReactiveMongoTemplate {
+
+        private final Mono<Void> gate;
+        private final AtomicInteger held;
+
+        GatedTemplate(MongoClient client, Mono<Void> gate, AtomicInteger held) {
+            super(client, "lambdashop");
+            this.gate = gate;
+            this.held = held;
+        }
+
+        @Override
+        public <T> Mono<T> insert(T objectToSave) {
+            if (!(objectToSave instanceof Customer)) {
+                return super.insert(objectToSave);
+            }
+            return Mono.fromRunnable(held::incrementAndGet)
+                    .then(gate)
+                    .then(Mono.defer(() -> super.insert(objectToSave)));
+        }
+    }
+
+    // Repository che delega a quello reale, ma fallisce le eliminazioni per id quando richiesto
+    private static CustomersRepository failingDeletes(CustomersRepository repository, AtomicBoolean fail) {
+        return (CustomersRepository) Proxy.newProxyInstance(CustomersRepository.class.getClassLoader(),
+                new Class<?>[]{CustomersRepository.class}, (proxy, method, args) -> {
+                    if (fail.get() && method.getName().equals("deleteById")) {
+                        return Mono.error(new DataAccessResourceFailureException("Database non raggiungibile"));
+                    }
+                    try {
+                        return method.invoke(repository, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    // Verifica che ogni codice atteso compaia una sola volta, sul suo shard, e che non ci sia altro
+    private static void assertCustomersAtHome(int shardCount, List<String> expected) {
+        long total = 0;
+        for (int shard = 0; shard < NODES; shard++) {
+            total += nodes.get(shard).getTemplate().count(new Query(), Customer.class).block();
+        }
+        assertEquals(expected.size(), total);
+        for (String codice : expected) {
+            for (int shard = 0; shard < NODES; shard++) {
+                long expectedCount = shard == ShardedCustomersRepository.shardIndex(codice, shardCount) ? 1L : 0L;
+                assertEquals(expectedCount, countByCodice(shard, codice), codice + " sullo shard " + shard);
+            }
+        }
+    }
+
+    private static void assertSorted(List<Customer> customers, Comparator<Customer> comparator) {
+        for (int i = 1; i < customers.size(); i++) {
+            assertTrue(comparator.compare(customers.get(i - 1), customers.get(i)) <= 0);
+        }
+    }
+
+    private static String codice(int i) {
+        return String.format("C%05d", i);
+    }
+
+    private static List<String> expectedCodici(int count) {
+        List<String> codici = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            codici.add(codice(i));
+        }
+        return codici;
+    }
+
+    // Primo codice che ha come destinazione lo shard indicato
+    private static String codiceOnShard(int shard, int shardCount, int skip) {
+        int i = 0;
+        while (true) {
+            String codice = codice(i++);
+            if (ShardedCustomersRepository.shardIndex(codice, shardCount) == shard && skip-- == 0) {
+                return codice;
+            }
+        }
+    }
+
+    private static Customer customer(String id, String codice) {
+        return new Customer(id, codice, "Cliente " + codice, 10, codice + "@lambdashop.it", "Via Roma");
+    }
+
+    private static void saveCustomers(ShardedCustomersRepository repository, int count) {
+        Flux.range(0, count)
+                .concatMap(i -> repository.save(new Customer(null, codice(i), "Cliente " + (char) ('A' + i % 26),
+                        i * 10, "cliente" + i + "@lambdashop.it", "Via Roma " + i)))
+                .blockLast();
+    }
+
+    private static long countById(int shard, String id) {
+        return nodes.get(shard).getTemplate()
+                .count(Query.query(Criteria.where("id").is(id)), Customer.class)
+                .block();
+    }
+
+    private static long countByCodice(int shard, String codice) {
+        return nodes.get(shard).getTemplate()
+                .count(Query.query(Criteria.where("codice").is(codice)), Customer.class)
+                .block();
+    }
+}